@@ -0,0 +1,154 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.TypedKey;
+import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.engine.delivery.dom.serialize.Serializer;
+import org.w3c.dom.Element;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Rate limited sampler of the fragments matched by a scripted visitor.
+ * <p/>
+ * Capture is enabled on a &lt;g:groovy&gt; resource by setting the "captureFile" parameter.  At most "captureRate"
+ * fragments (default 10) are captured per second, so capture can be left on against production traffic.  Captured
+ * fragments are appended to a {@link FragmentCorpus} and can be replayed with the {@link FragmentReplayRunner}.
+ */
+public class FragmentCapture {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FragmentCapture.class);
+
+    public static final String CAPTURE_FILE_PARAM = "captureFile";
+    public static final String CAPTURE_RATE_PARAM = "captureRate";
+    public static final int DEFAULT_CAPTURE_RATE = 10;
+
+    /**
+     * Set to {@link Boolean#TRUE} on an {@link ExecutionContext} to disable capture for that filtering operation,
+     * e.g. when replaying a corpus through a capture enabled configuration.
+     */
+    public static final TypedKey<Boolean> CAPTURE_DISABLED_TYPED_KEY = TypedKey.of();
+
+    private final FragmentCorpus corpus;
+    private final String resource;
+    private final String selector;
+    private final int captureRate;
+    private long windowStart;
+    private int windowCount;
+
+    public FragmentCapture(FragmentCorpus corpus, String resource, String selector, int captureRate) {
+        this.corpus = corpus;
+        this.resource = resource;
+        this.selector = selector;
+        this.captureRate = captureRate;
+    }
+
+    /**
+     * Create the capture for a scripted visitor resource.
+     *
+     * @param resourceConfig The &lt;g:groovy&gt; resource configuration.
+     * @return The capture, or null if capture is not enabled on the resource.
+     */
+    public static FragmentCapture create(ResourceConfig resourceConfig) {
+        String captureFile = resourceConfig.getParameterValue(CAPTURE_FILE_PARAM, String.class);
+
+        if (captureFile == null || captureFile.trim().isEmpty()) {
+            return null;
+        }
+
+        String resource;
+        String scriptClassName = resourceConfig.getParameterValue(GroovyContentHandlerFactory.SCRIPT_CLASS_PARAM, String.class);
+        if (scriptClassName != null) {
+            resource = "class:" + scriptClassName;
+        } else if (resourceConfig.isInline()) {
+            resource = "inline:" + Integer.toHexString(resourceConfig.getResource().hashCode());
+        } else {
+            resource = resourceConfig.getResource();
+        }
+        int captureRate = Integer.parseInt(resourceConfig.getParameterValue(CAPTURE_RATE_PARAM, String.class, Integer.toString(DEFAULT_CAPTURE_RATE)).trim());
+
+        return new FragmentCapture(FragmentCorpus.forFile(new File(captureFile.trim())), resource, resourceConfig.getSelectorPath().getSelector(), captureRate);
+    }
+
+    /**
+     * Capture the fragment, if the capture rate allows.  Failing to capture the fragment is logged and never
+     * fails the filtering operation.
+     *
+     * @param element          The fragment element, before the script is applied to it.
+     * @param executionContext The execution context.
+     */
+    public void capture(Element element, ExecutionContext executionContext) {
+        if (Boolean.TRUE.equals(executionContext.get(CAPTURE_DISABLED_TYPED_KEY)) || !tryAcquire()) {
+            return;
+        }
+
+        try {
+            StringWriter fragmentWriter = new StringWriter();
+            Serializer.recursiveDOMWrite(element, fragmentWriter);
+            corpus.append(new FragmentCorpus.Record(resource, selector, System.currentTimeMillis(), fragmentWriter.toString()));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to capture fragment to corpus file '" + corpus.getFile() + "'.", e);
+        }
+    }
+
+    private synchronized boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+
+        if (now - windowStart >= 1000) {
+            windowStart = now;
+            windowCount = 0;
+        }
+        if (windowCount < captureRate) {
+            windowCount++;
+            return true;
+        }
+
+        return false;
+    }
+}
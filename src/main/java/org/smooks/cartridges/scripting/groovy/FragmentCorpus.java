@@ -0,0 +1,175 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact, append-only file of message fragments captured from scripted visitors.
+ * <p/>
+ * Each {@link Record} is tagged with the script resource and the selector it was captured on.  Records are
+ * appended as independent GZIP members, so a corpus can be appended to across runs (and processes) and read back
+ * in one pass.
+ *
+ * @see FragmentCapture
+ * @see FragmentReplayRunner
+ */
+public class FragmentCorpus {
+
+    private static final ConcurrentMap<String, FragmentCorpus> CORPORA = new ConcurrentHashMap<>();
+
+    private final File file;
+
+    private FragmentCorpus(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the corpus for the supplied file.  All writers of the same file share one instance, so that
+     * concurrent appends do not interleave.
+     *
+     * @param file The corpus file.
+     * @return The corpus.
+     */
+    public static FragmentCorpus forFile(File file) {
+        return CORPORA.computeIfAbsent(file.getAbsoluteFile().toString(), path -> new FragmentCorpus(new File(path)));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void append(Record record) throws IOException {
+        try (DataOutputStream outputStream = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file, true))))) {
+            outputStream.writeUTF(record.getResource());
+            outputStream.writeUTF(record.getSelector());
+            outputStream.writeLong(record.getTimestamp());
+            byte[] fragmentBytes = record.getFragment().getBytes("UTF-8");
+            outputStream.writeInt(fragmentBytes.length);
+            outputStream.write(fragmentBytes);
+        }
+    }
+
+    public synchronized List<Record> read() throws IOException {
+        List<Record> records = new ArrayList<>();
+
+        if (!file.exists() || file.length() == 0) {
+            return records;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))))) {
+            while (true) {
+                String resource;
+                try {
+                    resource = inputStream.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String selector = inputStream.readUTF();
+                long timestamp = inputStream.readLong();
+                byte[] fragmentBytes = new byte[inputStream.readInt()];
+                inputStream.readFully(fragmentBytes);
+
+                records.add(new Record(resource, selector, timestamp, new String(fragmentBytes, "UTF-8")));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Captured fragment.
+     */
+    public static class Record {
+
+        private final String resource;
+        private final String selector;
+        private final long timestamp;
+        private final String fragment;
+
+        public Record(String resource, String selector, long timestamp, String fragment) {
+            this.resource = resource;
+            this.selector = selector;
+            this.timestamp = timestamp;
+            this.fragment = fragment;
+        }
+
+        /**
+         * @return The script resource that captured the fragment.
+         */
+        public String getResource() {
+            return resource;
+        }
+
+        /**
+         * @return The selector the fragment was captured on.
+         */
+        public String getSelector() {
+            return selector;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return The serialized fragment, as seen by the script.
+         */
+        public String getFragment() {
+            return fragment;
+        }
+    }
+}
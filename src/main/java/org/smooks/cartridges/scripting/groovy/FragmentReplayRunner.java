@@ -0,0 +1,318 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.smooks.Smooks;
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.TypedKey;
+import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.engine.delivery.event.VisitExecutionEvent;
+import org.smooks.io.payload.StringResult;
+import org.smooks.io.payload.StringSource;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a {@link FragmentCorpus} through a Smooks configuration, reporting throughput, latency distribution
+ * and allocation.
+ * <p/>
+ * Each fragment is replayed as a filtering operation of its own, so the reported latency is the end-to-end
+ * filtering latency per fragment (parsing, execution context set up, all resources of the configuration and result
+ * serialization), not the latency of the script alone.  To single out the script, every measured pass is paired
+ * with a baseline pass in which the scripted resources on the fragment's selector are disabled.  The difference
+ * between the two is the share of the script.
+ * <p/>
+ * Typically used to benchmark a changed &lt;g:groovy&gt; resource against the fragments its production version
+ * actually saw:
+ * <pre>
+ * java org.smooks.cartridges.scripting.groovy.FragmentReplayRunner &lt;smooks-config&gt; &lt;corpus-file&gt; [iterations] [selector]
+ * </pre>
+ * Each fragment is wrapped in the ancestor elements named by its selector, and capture is disabled while
+ * replaying.  The first pass over the corpus is a warm-up and is not reported.  It fails if a fragment is not
+ * visited by a resource on the selector it was captured on.
+ */
+public class FragmentReplayRunner {
+
+    /**
+     * Selectors of the scripted resources that are disabled for a filtering operation.  Used for the baseline passes.
+     */
+    public static final TypedKey<Set<String>> DISABLED_SELECTORS_TYPED_KEY = TypedKey.of();
+
+    private static final Pattern ANCESTOR_NAME = Pattern.compile("[A-Za-z_][\\w.-]*");
+
+    private final Smooks smooks;
+    private final List<FragmentCorpus.Record> records;
+
+    public FragmentReplayRunner(Smooks smooks, List<FragmentCorpus.Record> records) {
+        this.smooks = smooks;
+        this.records = records;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: FragmentReplayRunner <smooks-config> <corpus-file> [iterations] [selector]");
+            System.exit(1);
+        }
+
+        int iterations = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+        List<FragmentCorpus.Record> records = FragmentCorpus.forFile(new File(args[1])).read();
+        if (args.length > 3) {
+            List<FragmentCorpus.Record> selectedRecords = new ArrayList<>();
+            for (FragmentCorpus.Record record : records) {
+                if (record.getSelector().equals(args[3])) {
+                    selectedRecords.add(record);
+                }
+            }
+            records = selectedRecords;
+        }
+
+        Smooks smooks = new Smooks(args[0]);
+        try {
+            System.out.println(new FragmentReplayRunner(smooks, records).run(iterations));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    /**
+     * Test whether a scripted resource is disabled for a filtering operation.
+     *
+     * @param resourceConfig   The scripted resource configuration.
+     * @param executionContext The execution context of the filtering operation.
+     * @return True if the resource is disabled, otherwise false.
+     */
+    public static boolean isDisabled(ResourceConfig resourceConfig, ExecutionContext executionContext) {
+        Set<String> disabledSelectors = executionContext.get(DISABLED_SELECTORS_TYPED_KEY);
+        return disabledSelectors != null && disabledSelectors.contains(resourceConfig.getSelectorPath().getSelector());
+    }
+
+    /**
+     * Replay the corpus.
+     *
+     * @param iterations The number of passes over the corpus to measure, after the warm-up pass.  Each pass is
+     *                   preceded by a baseline pass.
+     * @return The report.
+     */
+    public Report run(int iterations) {
+        verify();
+        replay(new long[records.size()], 0, true);
+
+        long[] latencies = new long[records.size() * iterations];
+        long[] baselineLatencies = new long[records.size() * iterations];
+        long elapsed = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            replay(baselineLatencies, i * records.size(), true);
+
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            replay(latencies, i * records.size(), false);
+            elapsed += System.nanoTime() - start;
+            allocated += getAllocatedBytes() - allocatedBefore;
+        }
+
+        return new Report(latencies, baselineLatencies, elapsed, (getAllocatedBytes() < 0 ? -1 : allocated));
+    }
+
+    /**
+     * Warm-up pass, checking that every fragment is visited by a resource on the selector it was captured on.
+     * Timings are worthless if the fragments don't trigger the script.
+     */
+    private void verify() {
+        for (FragmentCorpus.Record record : records) {
+            AtomicInteger visitCount = new AtomicInteger();
+            ExecutionContext executionContext = createExecutionContext();
+
+            executionContext.getContentDeliveryRuntime().addExecutionEventListener(executionEvent -> {
+                if (executionEvent instanceof VisitExecutionEvent && record.getSelector().equals(((VisitExecutionEvent<?, ?>) executionEvent).getResourceConfig().getSelectorPath().getSelector())) {
+                    visitCount.incrementAndGet();
+                }
+            });
+            smooks.filterSource(executionContext, new StringSource(wrap(record)), new StringResult());
+
+            if (visitCount.get() == 0) {
+                throw new IllegalStateException("Replayed fragment captured on selector '" + record.getSelector() + "' (resource '" + record.getResource() + "') was not visited by any resource on that selector.  The selector may depend on context that cannot be reconstructed from the fragment.");
+            }
+        }
+    }
+
+    private void replay(long[] latencies, int offset, boolean baseline) {
+        for (int i = 0; i < records.size(); i++) {
+            String fragment = wrap(records.get(i));
+            ExecutionContext executionContext = createExecutionContext();
+            if (baseline) {
+                executionContext.put(DISABLED_SELECTORS_TYPED_KEY, Collections.singleton(records.get(i).getSelector()));
+            }
+            long start = System.nanoTime();
+            smooks.filterSource(executionContext, new StringSource(fragment), new StringResult());
+            latencies[offset + i] = System.nanoTime() - start;
+        }
+    }
+
+    private ExecutionContext createExecutionContext() {
+        ExecutionContext executionContext = smooks.createExecutionContext();
+        // Don't append the replayed fragments to the corpus being replayed...
+        executionContext.put(FragmentCapture.CAPTURE_DISABLED_TYPED_KEY, true);
+        return executionContext;
+    }
+
+    /**
+     * Wrap the fragment in the ancestor elements named by the steps of its selector, e.g. "order/order-item" wraps
+     * the fragment in an "order" element.  Wildcard, namespace prefixed and document steps are skipped, and step
+     * predicates are dropped.
+     */
+    static String wrap(FragmentCorpus.Record record) {
+        String[] steps = record.getSelector().trim().split("/+");
+        StringBuilder wrapped = new StringBuilder();
+        StringBuilder endTags = new StringBuilder();
+
+        for (int i = 0; i < steps.length - 1; i++) {
+            String name = steps[i].replaceAll("\\[.*$", "").trim();
+            if (ANCESTOR_NAME.matcher(name).matches()) {
+                wrapped.append('<').append(name).append('>');
+                endTags.insert(0, "</" + name + ">");
+            }
+        }
+
+        return wrapped.append(record.getFragment()).append(endTags).toString();
+    }
+
+    private static long getAllocatedBytes() {
+        // com.sun.management is not available on all JVMs, so don't link against it...
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            Method getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) getThreadAllocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Replay measurements.  Latencies are end-to-end filtering latencies per fragment.
+     */
+    public static class Report {
+
+        private final long[] latencies;
+        private final long[] baselineLatencies;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+
+        public Report(long[] latencies, long[] baselineLatencies, long elapsedNanos, long allocatedBytes) {
+            this.latencies = latencies.clone();
+            this.baselineLatencies = baselineLatencies.clone();
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            Arrays.sort(this.latencies);
+            Arrays.sort(this.baselineLatencies);
+        }
+
+        public int getFragmentCount() {
+            return latencies.length;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return Fragments per second.
+         */
+        public double getThroughput() {
+            return (elapsedNanos == 0 ? 0 : latencies.length * 1_000_000_000D / elapsedNanos);
+        }
+
+        /**
+         * @param percentile Percentile, between 0 and 100.
+         * @return The filtering latency, in nanoseconds, of the requested percentile.
+         */
+        public long getLatency(double percentile) {
+            return getPercentile(latencies, percentile);
+        }
+
+        /**
+         * @param percentile Percentile, between 0 and 100.
+         * @return The filtering latency, in nanoseconds, of the requested percentile, with the scripted resources on
+         * the fragments' selectors disabled.
+         */
+        public long getBaselineLatency(double percentile) {
+            return getPercentile(baselineLatencies, percentile);
+        }
+
+        private static long getPercentile(long[] sortedLatencies, double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+        }
+
+        /**
+         * @return Bytes allocated by the replay thread, or -1 if the JVM does not support allocation measurement.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "fragments=%d, throughput=%.1f/s, filtering latency per fragment(us) p50=%.1f p90=%.1f p99=%.1f max=%.1f, baseline without script(us) p50=%.1f p90=%.1f p99=%.1f max=%.1f, script share p50=%.1fus, allocated/fragment=%s",
+                    getFragmentCount(), getThroughput(),
+                    getLatency(50) / 1000D, getLatency(90) / 1000D, getLatency(99) / 1000D, getLatency(100) / 1000D,
+                    getBaselineLatency(50) / 1000D, getBaselineLatency(90) / 1000D, getBaselineLatency(99) / 1000D, getBaselineLatency(100) / 1000D,
+                    (getLatency(50) - getBaselineLatency(50)) / 1000D,
+                    (allocatedBytes < 0 || latencies.length == 0 ? "n/a" : Long.toString(allocatedBytes / latencies.length)));
+        }
+    }
+}
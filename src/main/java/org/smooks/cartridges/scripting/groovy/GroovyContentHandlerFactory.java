@@ -43,6 +43,7 @@
 package org.smooks.cartridges.scripting.groovy;
 
 import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +64,7 @@ import org.smooks.api.Registry;
 import org.smooks.support.FreeMarkerTemplate;
 import org.smooks.support.DomUtils;
 import org.smooks.support.StreamUtils;
+import org.smooks.support.ClassUtils;
 import org.w3c.dom.Element;
 
 import jakarta.annotation.PostConstruct;
@@ -72,9 +74,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * {@link Visitor} Factory class for the <a href="http://groovy.codehaus.org/">Groovy</a> scripting language.
@@ -98,6 +105,27 @@ import java.util.Map;
  *      executed on the visitBefore by setting the "executeBefore" attribute to "true".</li>
  *  <li><b>Comment/CDATA Script Wrapping</b>: If the script contains special XML characters, it can be wrapped in an XML
  *       Comment or CDATA section.  See example below.</li>
+ *  <li><b>Fragment Capture</b>: Fragments matched on the visitAfter event can be sampled into a {@link FragmentCorpus}
+ *      by setting the "captureFile" (and optionally "captureRate") parameters, and replayed with the
+ *      {@link FragmentReplayRunner}.  See {@link FragmentCapture}.</li>
+ *  <li><b>Parallel Execution</b>: Scripts executed on the visitAfter event that don't share state can be executed in
+ *      parallel with the filtering of the rest of the message by setting the "parallel" attribute to "true".  Such
+ *      scripts read beans via "getBean" and add beans via "addBean" only, and cannot use "writeFragment".
+ *      See {@link ParallelScriptExecutor}.</li>
+ *  <li><b>Fragment Document Reuse</b>: On the visitAfter event, a new DOM {@link org.w3c.dom.Document} is created for
+ *      every targeted element by default.  Setting the "reuseFragmentDocument" parameter to "true" reuses the
+ *      {@link org.w3c.dom.Document} instances within a filtering operation.  The script must not keep the fragment
+ *      beyond its invocation.  See {@link ReusableDomModelCreator}.</li>
+ *  <li><b>Precompiled Script Classes</b>: Instead of an inline script, a precompiled {@link Script} class can be
+ *      configured via &lt;g:class name="..."/&gt;, avoiding the compilation of the script at startup.  The Visitor
+ *      template is applied as for an inline script, but calls the class (constructed with a {@link groovy.lang.Binding}
+ *      of the script variables) instead of embedding the script.  The resulting Visitor class takes the script class
+ *      as a constructor argument, so it's only compiled once per JVM for each "executeBefore"/"parallel" combination.
+ *      The "imports" are ignored and scripts calling "writeFragment" must set the "writeFragment" parameter to
+ *      "true".</li>
+ *  <li><b>Memoization</b>: Pure scripts applied to repetitive fragments can have their results memoized by setting the
+ *      "memoize" attribute to "true".  The output of the script (written fragment and added beans) is replayed when
+ *      an identical fragment is matched again.  See {@link ScriptMemoizer}.</li>
  * </ul>
  *
  * <h2>Mixing SAX and DOM Models</h2>
@@ -183,10 +211,24 @@ import java.util.Map;
  */
 public class GroovyContentHandlerFactory implements ContentHandlerFactory {
 
+    public static final String SCRIPT_CLASS_PARAM = "scriptClass";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(GroovyContentHandlerFactory.class);
 
+    /**
+     * The Visitor class template, loaded once and shared by all factory instances.  {@link FreeMarkerTemplate}
+     * instances can be applied concurrently.
+     */
+    private static final AtomicReference<FreeMarkerTemplate> CLASS_TEMPLATE = new AtomicReference<>();
+
+    /**
+     * The Visitor classes of precompiled {@link Script} classes, by Visitor class name.  These Visitor classes take the
+     * {@link Script} class as a constructor argument, so a Visitor class is compiled once for each combination of
+     * template inputs and shared by all resources.
+     */
+    private static final Map<String, Class<?>> SCRIPT_CLASS_VISITORS = new ConcurrentHashMap<>();
+
     private FreeMarkerTemplate classTemplate;
-    private volatile int classGenCount = 1;
 
     @Inject
     private LifecycleManager lifecycleManager;
@@ -196,8 +238,11 @@ public class GroovyContentHandlerFactory implements ContentHandlerFactory {
 
     @PostConstruct
     public void postConstruct() throws IOException {
-        String templateText = StreamUtils.readStreamAsString(getClass().getResourceAsStream("/script.groovy.ftl"), "UTF-8");
-        classTemplate = new FreeMarkerTemplate(templateText);
+        if (CLASS_TEMPLATE.get() == null) {
+            String templateText = StreamUtils.readStreamAsString(getClass().getResourceAsStream("/script.groovy.ftl"), "UTF-8");
+            CLASS_TEMPLATE.compareAndSet(null, new FreeMarkerTemplate(templateText));
+        }
+        classTemplate = CLASS_TEMPLATE.get();
     }
 
     /* (non-Javadoc)
@@ -205,6 +250,11 @@ public class GroovyContentHandlerFactory implements ContentHandlerFactory {
      */
     public ContentHandler create(ResourceConfig resourceConfig) throws SmooksConfigException {
         try {
+            String scriptClassName = resourceConfig.getParameterValue(SCRIPT_CLASS_PARAM, String.class);
+            if (scriptClassName != null) {
+                return initialize((ContentHandler) createFromClass(scriptClassName, resourceConfig), resourceConfig);
+            }
+
             byte[] groovyScriptBytes = resourceConfig.getBytes();
             String groovyScript = new String(groovyScriptBytes, StandardCharsets.UTF_8);
 
@@ -223,46 +273,127 @@ public class GroovyContentHandlerFactory implements ContentHandlerFactory {
                 groovyObject = createFromTemplate(groovyScript, resourceConfig);
             }
 
-            ContentHandler groovyResource = (ContentHandler) groovyObject;
-
-            lifecycleManager.applyPhase(groovyResource, new PostConstructLifecyclePhase(new Scope(registry, resourceConfig, groovyResource)));
-
-            return groovyResource;
+            return initialize((ContentHandler) groovyObject, resourceConfig);
         } catch (Exception e) {
             throw new SmooksConfigException("Error constructing class from Groovy script " + resourceConfig.getResource(), e);
         }
     }
 
+    /**
+     * Apply the PostConstruct phase to the content handler and register it, so that the PreDestroy phase is applied
+     * to it when Smooks is closed.
+     */
+    protected ContentHandler initialize(ContentHandler groovyResource, ResourceConfig resourceConfig) {
+        lifecycleManager.applyPhase(groovyResource, new PostConstructLifecyclePhase(new Scope(registry, resourceConfig, groovyResource)));
+        registry.registerObject(groovyResource);
+
+        return groovyResource;
+    }
+
     @Override
     public String getType() {
         return "groovy";
     }
 
     protected Object createFromTemplate(String groovyScript, ResourceConfig resourceConfig) throws InstantiationException, IllegalAccessException {
-        GroovyClassLoader groovyClassLoader = new GroovyClassLoader(getClass().getClassLoader());
+        return createFromTemplate(groovyScript, null, resourceConfig);
+    }
+
+    protected Object createFromClass(String scriptClassName, ResourceConfig resourceConfig) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        Class<?> scriptClass = ClassUtils.forName(scriptClassName, getClass());
+
+        if (Visitor.class.isAssignableFrom(scriptClass)) {
+            return scriptClass.newInstance();
+        } else if (Script.class.isAssignableFrom(scriptClass)) {
+            return createFromTemplate(null, scriptClass, resourceConfig);
+        } else {
+            throw new SmooksConfigException("Groovy class '" + scriptClassName + "' must be either a " + Visitor.class.getName() + " or a " + Script.class.getName() + ".");
+        }
+    }
+
+    /**
+     * Apply the Visitor template to an inline script, or to a precompiled {@link Script} class, in which case the
+     * Visitor calls the class instead of embedding the script.  The Visitor class of a precompiled {@link Script}
+     * class is compiled the first time its template inputs are seen, and then reused.
+     */
+    private Object createFromTemplate(String groovyScript, Class<?> scriptClass, ResourceConfig resourceConfig) throws InstantiationException, IllegalAccessException {
         Map<String, Object> templateVars = new HashMap<>();
         String imports = resourceConfig.getParameterValue("imports", String.class, "");
 
-        templateVars.put("imports", cleanImportsConfig(imports));
-        templateVars.put("visitorName", createClassName());
+        boolean visitBefore = Boolean.parseBoolean(resourceConfig.getParameterValue("executeBefore", String.class, "false"));
+        boolean parallel = Boolean.parseBoolean(resourceConfig.getParameterValue("parallel", String.class, "false"));
+
+        templateVars.put("visitBefore", visitBefore);
+        templateVars.put("parallel", parallel);
         templateVars.put("elementName", getElementName(resourceConfig));
-        templateVars.put("visitBefore", Boolean.parseBoolean(resourceConfig.getParameterValue("executeBefore", String.class, "false")));
-        templateVars.put("visitorScript", groovyScript);
+        templateVars.put("precompiledScript", scriptClass != null);
+        boolean writeFragment;
+        if (scriptClass == null) {
+            templateVars.put("imports", cleanImportsConfig(imports));
+            templateVars.put("visitorName", createClassName(groovyScript, imports, visitBefore, parallel));
+            templateVars.put("visitorScript", groovyScript);
+            writeFragment = groovyScript.contains("writeFragment");
+        } else {
+            // Imports are compiled into the class, which is passed to the Visitor constructor...
+            templateVars.put("imports", "");
+            templateVars.put("visitorName", createClassName(Script.class.getName(), "", visitBefore, parallel));
+            writeFragment = Boolean.parseBoolean(resourceConfig.getParameterValue("writeFragment", String.class, "false"));
+        }
 
-        String templatedClass = classTemplate.apply(templateVars);
+        if (parallel) {
+            assertParallelSupported(resourceConfig, visitBefore, writeFragment);
+        }
+        if (Boolean.parseBoolean(resourceConfig.getParameterValue(ScriptMemoizer.MEMOIZE_PARAM, String.class, "false"))) {
+            assertMemoizeSupported(resourceConfig, visitBefore, parallel);
+        }
 
-        if (groovyScript.contains("writeFragment")) {
+        if (writeFragment) {
             resourceConfig.setParameter("writeFragment", "true");
         }
 
+        if (scriptClass == null) {
+            return compile(templateVars).newInstance();
+        }
+
+        Class<?> visitorClass = SCRIPT_CLASS_VISITORS.computeIfAbsent((String) templateVars.get("visitorName"), visitorName -> compile(templateVars));
         try {
-            Class groovyClass = groovyClassLoader.parseClass(templatedClass);
-            return groovyClass.newInstance();
+            return visitorClass.getDeclaredConstructor(Class.class).newInstance(scriptClass);
+        } catch (NoSuchMethodException | InvocationTargetException e) {
+            throw new SmooksConfigException("Failed to construct Groovy scripted Visitor class for Groovy class '" + scriptClass.getName() + "'.", e);
+        }
+    }
+
+    private Class<?> compile(Map<String, Object> templateVars) {
+        String templatedClass = classTemplate.apply(templateVars);
+
+        try {
+            return new GroovyClassLoader(getClass().getClassLoader()).parseClass(templatedClass);
         } catch (CompilationFailedException e) {
             throw new SmooksConfigException("Failed to compile Groovy scripted Visitor class:\n==========================\n" + templatedClass + "\n==========================\n", e);
         }
     }
 
+    protected void assertParallelSupported(ResourceConfig resourceConfig, boolean visitBefore, boolean writeFragment) {
+        if (visitBefore) {
+            throw new SmooksConfigException("Groovy script on '" + resourceConfig.getSelectorPath().getSelector() + "' cannot be executed in parallel: parallel execution is only supported when executeBefore is 'false'.");
+        }
+        if (Boolean.parseBoolean(resourceConfig.getParameterValue("reuseFragmentDocument", String.class, "false"))) {
+            throw new SmooksConfigException("Groovy script on '" + resourceConfig.getSelectorPath().getSelector() + "' cannot be executed in parallel: parallel execution does not support 'reuseFragmentDocument'.");
+        }
+        if (writeFragment) {
+            throw new SmooksConfigException("Groovy script on '" + resourceConfig.getSelectorPath().getSelector() + "' cannot be executed in parallel: parallel execution does not support 'writeFragment'.");
+        }
+        if (!Boolean.parseBoolean(resourceConfig.getParameterValue("createDOMFragment", String.class, "true"))) {
+            throw new SmooksConfigException("Groovy script on '" + resourceConfig.getSelectorPath().getSelector() + "' cannot be executed in parallel: parallel execution requires the DOM fragment ('createDOMFragment' cannot be 'false').");
+        }
+    }
+
+    protected void assertMemoizeSupported(ResourceConfig resourceConfig, boolean visitBefore, boolean parallel) {
+        if (visitBefore || parallel || !Boolean.parseBoolean(resourceConfig.getParameterValue("createDOMFragment", String.class, "true"))) {
+            throw new SmooksConfigException("Groovy script on '" + resourceConfig.getSelectorPath().getSelector() + "' cannot be memoized: memoization is only supported on the DOM fragment of the visitAfter event, without parallel execution.");
+        }
+    }
+
     protected Object cleanImportsConfig(String imports) {
         try {
             StringBuffer importsBuffer = trimLines(new StringReader(imports));
@@ -274,13 +405,39 @@ public class GroovyContentHandlerFactory implements ContentHandlerFactory {
         return imports.replace("import ", "\nimport ");
     }
 
-    protected synchronized String createClassName() {
-        StringBuilder className = new StringBuilder();
+    /**
+     * @deprecated No longer called by the factory, which derives class names from the template inputs.  Override
+     * {@link #createClassName(String, String, boolean, boolean)} instead.
+     */
+    @Deprecated
+    protected String createClassName() {
+        return createClassName("", "", false, false);
+    }
 
-        className.append("SmooksVisitor_");
-        className.append(System.identityHashCode(this));
-        className.append("_");
-        className.append(classGenCount++);
+    /**
+     * Create the name of the templated Visitor class.  The name is derived from the template inputs, so it's
+     * deterministic and doesn't depend on any state shared between threads.  Each templated class is compiled
+     * by its own {@link GroovyClassLoader}, so resources with the same inputs don't clash.
+     */
+    protected String createClassName(String groovyScript, String imports, boolean visitBefore, boolean parallel) {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 MessageDigest not available.", e);
+        }
+
+        messageDigest.update(imports.getBytes(StandardCharsets.UTF_8));
+        messageDigest.update((byte) (visitBefore ? 1 : 0));
+        messageDigest.update((byte) (parallel ? 1 : 0));
+        messageDigest.update(groovyScript.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder className = new StringBuilder("SmooksVisitor_");
+        byte[] digest = messageDigest.digest();
+        for (int i = 0; i < 8; i++) {
+            className.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+            className.append(Character.forDigit(digest[i] & 0xF, 16));
+        }
 
         return className.toString();
     }
@@ -0,0 +1,225 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.SmooksException;
+import org.smooks.api.TypedKey;
+import org.smooks.api.bean.context.BeanContext;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleEvent;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleObserver;
+import org.smooks.api.bean.lifecycle.BeanLifecycle;
+import org.smooks.api.delivery.event.ExecutionEvent;
+import org.smooks.api.delivery.event.ExecutionEventListener;
+import org.smooks.engine.delivery.event.EndFragmentExecutionEvent;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Executes the fragment scripts of a parallel scripted visitor on the {@link ForkJoinPool#commonPool() common pool},
+ * while the filtering thread carries on streaming the message.
+ * <p/>
+ * Scripts executed in parallel don't have access to the {@link ExecutionContext}.  Each script reads beans from an
+ * immutable snapshot of the {@link BeanContext} taken when its fragment was matched, so it sees the same beans as it
+ * would if it was executed on the filtering thread, regardless of when it actually runs.  The beans a script adds are held back until the filtering thread merges them
+ * into the {@link BeanContext}, in document order.  Completed scripts are merged as further fragments are matched,
+ * and all outstanding scripts are merged when the document element ends, i.e., before the filtering results are
+ * produced.
+ */
+public class ParallelScriptExecutor {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = Runtime.getRuntime().availableProcessors() * 4;
+
+    private final TypedKey<Execution> executionTypedKey = TypedKey.of();
+    private final int maxInFlight;
+
+    public ParallelScriptExecutor() {
+        this(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxInFlight The maximum number of scripts that can be outstanding per filtering operation before the
+     *                    filtering thread blocks on the oldest one.
+     */
+    public ParallelScriptExecutor(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Submit a script.
+     * <p/>
+     * The end of the document element is signalled before the element is visited, so a script targeting the
+     * document element is joined straight away rather than when the document element ends.
+     *
+     * @param element          The targeted element.
+     * @param script           The script.  It is applied to a snapshot of the bean context and returns the beans it
+     *                         adds.
+     * @param executionContext The execution context of the filtering operation.
+     */
+    public void submit(Element element, Function<Map<String, Object>, Map<String, Object>> script, ExecutionContext executionContext) {
+        Execution execution = executionContext.get(executionTypedKey);
+
+        if (execution == null) {
+            execution = new Execution(executionContext.getBeanContext());
+            executionContext.put(executionTypedKey, execution);
+            executionContext.getBeanContext().addObserver(execution);
+            executionContext.getContentDeliveryRuntime().addExecutionEventListener(new DocumentEndListener(executionContext));
+        }
+        Map<String, Object> beans = execution.beans;
+        execution.pending.add(ForkJoinPool.commonPool().submit(() -> script.apply(beans)));
+
+        while (!execution.pending.isEmpty() && (execution.pending.peek().isDone() || execution.pending.size() > maxInFlight)) {
+            merge(execution.pending.poll(), executionContext);
+        }
+        if (isDocumentElement(element)) {
+            join(executionContext);
+        }
+    }
+
+    /**
+     * Wait for all outstanding scripts of the filtering operation and merge their beans into the {@link BeanContext}.
+     *
+     * @param executionContext The execution context of the filtering operation.
+     */
+    public void join(ExecutionContext executionContext) {
+        Execution execution = executionContext.get(executionTypedKey);
+
+        if (execution != null) {
+            while (!execution.pending.isEmpty()) {
+                merge(execution.pending.poll(), executionContext);
+            }
+        }
+    }
+
+    private void merge(Future<Map<String, Object>> script, ExecutionContext executionContext) {
+        Map<String, Object> addedBeans;
+        try {
+            addedBeans = script.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SmooksException("Interrupted while waiting for parallel Groovy script.", e);
+        } catch (ExecutionException e) {
+            cancel(executionContext);
+            throw new SmooksException("Parallel Groovy script failed.", e.getCause());
+        }
+
+        BeanContext beanContext = executionContext.getBeanContext();
+        for (Map.Entry<String, Object> addedBean : addedBeans.entrySet()) {
+            beanContext.addBean(addedBean.getKey(), addedBean.getValue());
+        }
+    }
+
+    private static boolean isDocumentElement(Node node) {
+        Node parentNode = node.getParentNode();
+        return node.getNodeType() == Node.ELEMENT_NODE && (parentNode == null || parentNode.getNodeType() == Node.DOCUMENT_NODE);
+    }
+
+    private void cancel(ExecutionContext executionContext) {
+        Deque<Future<Map<String, Object>>> pending = executionContext.get(executionTypedKey).pending;
+
+        while (!pending.isEmpty()) {
+            pending.poll().cancel(false);
+        }
+    }
+
+    /**
+     * State of a filtering operation.  Mirrors the {@link BeanContext} into a {@link PersistentBeanMap}, which is
+     * copied once and then updated as beans are added, changed and removed.  Every version of the map is immutable, so
+     * the current version is the snapshot handed to a submitted script.
+     */
+    private static class Execution implements BeanContextLifecycleObserver {
+
+        private final Deque<Future<Map<String, Object>>> pending = new ArrayDeque<>();
+        private PersistentBeanMap beans = PersistentBeanMap.EMPTY;
+
+        private Execution(BeanContext beanContext) {
+            for (Map.Entry<String, Object> bean : beanContext.getBeanMap().entrySet()) {
+                if (bean.getValue() != null) {
+                    beans = beans.with(bean.getKey(), bean.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void onBeanLifecycleEvent(BeanContextLifecycleEvent event) {
+            BeanLifecycle lifecycle = event.getLifecycle();
+
+            if (lifecycle == BeanLifecycle.ADD || lifecycle == BeanLifecycle.CHANGE) {
+                if (event.getBean() != null) {
+                    beans = beans.with(event.getBeanId().getName(), event.getBean());
+                } else {
+                    beans = beans.without(event.getBeanId().getName());
+                }
+            } else if (lifecycle == BeanLifecycle.REMOVE) {
+                beans = beans.without(event.getBeanId().getName());
+            }
+        }
+    }
+
+    private class DocumentEndListener implements ExecutionEventListener {
+
+        private final ExecutionContext executionContext;
+
+        private DocumentEndListener(ExecutionContext executionContext) {
+            this.executionContext = executionContext;
+        }
+
+        @Override
+        public void onEvent(ExecutionEvent executionEvent) {
+            if (executionEvent instanceof EndFragmentExecutionEvent) {
+                Object node = ((EndFragmentExecutionEvent<?>) executionEvent).getFragment().unwrap();
+                if (node instanceof Node && isDocumentElement((Node) node)) {
+                    join(executionContext);
+                }
+            }
+        }
+    }
+}
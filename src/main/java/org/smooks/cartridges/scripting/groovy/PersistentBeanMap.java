@@ -0,0 +1,229 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable map of beans, updated by path copying.
+ * <p/>
+ * {@link #with(String, Object)} and {@link #without(String)} return a new map that shares all but the updated path
+ * of its hash trie with the original, so a snapshot of the bean context can be kept up to date per bean event, and
+ * handed out per fragment, without copying the bean context.
+ */
+final class PersistentBeanMap extends AbstractMap<String, Object> {
+
+    static final PersistentBeanMap EMPTY = new PersistentBeanMap(null, 0);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final Object root;
+    private final int size;
+
+    private PersistentBeanMap(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Get a map with the bean added, or replaced.
+     *
+     * @param beanId The bean ID.
+     * @param bean   The bean.
+     * @return The updated map.
+     */
+    PersistentBeanMap with(String beanId, Object bean) {
+        int hash = beanId.hashCode();
+        return new PersistentBeanMap(with(root, 0, hash, beanId, bean), find(root, 0, hash, beanId) == null ? size + 1 : size);
+    }
+
+    /**
+     * Get a map without the bean.
+     *
+     * @param beanId The bean ID.
+     * @return The updated map, or this map if it doesn't contain the bean.
+     */
+    PersistentBeanMap without(String beanId) {
+        int hash = beanId.hashCode();
+        if (find(root, 0, hash, beanId) == null) {
+            return this;
+        }
+        return new PersistentBeanMap(without(root, 0, hash, beanId), size - 1);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Map.Entry<String, Object> entry = find(root, 0, key.hashCode(), (String) key);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find(root, 0, key.hashCode(), (String) key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                List<Map.Entry<String, Object>> entries = new ArrayList<>(size);
+                collect(root, entries);
+                return Collections.unmodifiableList(entries).iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static Map.Entry<String, Object> find(Object node, int shift, int hash, String beanId) {
+        while (node instanceof Object[]) {
+            node = ((Object[]) node)[(hash >>> shift) & MASK];
+            shift += BITS;
+        }
+        if (node != null && ((Leaf) node).hash == hash) {
+            for (Map.Entry<String, Object> entry : ((Leaf) node).entries) {
+                if (entry.getKey().equals(beanId)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Object with(Object node, int shift, int hash, String beanId, Object bean) {
+        if (node == null) {
+            return new Leaf(hash, new SimpleImmutableEntry<>(beanId, bean));
+        }
+        if (node instanceof Object[]) {
+            Object[] branch = ((Object[]) node).clone();
+            int index = (hash >>> shift) & MASK;
+            branch[index] = with(branch[index], shift + BITS, hash, beanId, bean);
+            return branch;
+        }
+
+        Leaf leaf = (Leaf) node;
+        if (leaf.hash == hash) {
+            List<Map.Entry<String, Object>> entries = new ArrayList<>(leaf.entries.length + 1);
+            for (Map.Entry<String, Object> entry : leaf.entries) {
+                if (!entry.getKey().equals(beanId)) {
+                    entries.add(entry);
+                }
+            }
+            entries.add(new SimpleImmutableEntry<>(beanId, bean));
+            return new Leaf(hash, entries.toArray(new Map.Entry[0]));
+        }
+
+        // Hashes differ, so they are split by a branch before the shift runs out of hash bits...
+        Object[] branch = new Object[1 << BITS];
+        branch[(leaf.hash >>> shift) & MASK] = leaf;
+        return with(branch, shift, hash, beanId, bean);
+    }
+
+    private static Object without(Object node, int shift, int hash, String beanId) {
+        if (node instanceof Object[]) {
+            Object[] branch = ((Object[]) node).clone();
+            int index = (hash >>> shift) & MASK;
+            branch[index] = without(branch[index], shift + BITS, hash, beanId);
+            for (Object child : branch) {
+                if (child != null) {
+                    return branch;
+                }
+            }
+            return null;
+        }
+
+        Leaf leaf = (Leaf) node;
+        if (leaf.entries.length == 1) {
+            return null;
+        }
+        List<Map.Entry<String, Object>> entries = new ArrayList<>(leaf.entries.length - 1);
+        for (Map.Entry<String, Object> entry : leaf.entries) {
+            if (!entry.getKey().equals(beanId)) {
+                entries.add(entry);
+            }
+        }
+        return new Leaf(hash, entries.toArray(new Map.Entry[0]));
+    }
+
+    private static void collect(Object node, List<Map.Entry<String, Object>> entries) {
+        if (node instanceof Object[]) {
+            for (Object child : (Object[]) node) {
+                collect(child, entries);
+            }
+        } else if (node != null) {
+            Collections.addAll(entries, ((Leaf) node).entries);
+        }
+    }
+
+    private static final class Leaf {
+
+        private final int hash;
+        private final Map.Entry<String, Object>[] entries;
+
+        @SafeVarargs
+        private Leaf(int hash, Map.Entry<String, Object>... entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.SmooksException;
+import org.smooks.api.TypedKey;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleEvent;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleObserver;
+import org.smooks.api.bean.lifecycle.BeanLifecycle;
+import org.smooks.api.delivery.event.ExecutionEvent;
+import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.engine.delivery.event.EndFragmentExecutionEvent;
+import org.smooks.engine.delivery.event.StartFragmentExecutionEvent;
+import org.smooks.engine.delivery.sax.ng.CharDataFragmentExecutionEvent;
+import org.smooks.engine.delivery.sax.ng.bridge.BridgeAwareExecutionEventListener;
+import org.smooks.engine.resource.visitor.dom.DOMModel;
+import org.smooks.engine.resource.visitor.dom.DomModelCreator;
+import org.smooks.support.DomUtils;
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * {@link DomModelCreator} that reuses its fragment {@link Document} instances within a filtering operation.
+ * <p/>
+ * Enabled on a &lt;g:groovy&gt; resource by setting the "reuseFragmentDocument" parameter to "true".  Once the script
+ * returns, the fragment element is detached from its {@link Document} and the {@link Document} is handed out again
+ * for the next matched element.  A script that holds on to the fragment keeps a detached, but otherwise intact,
+ * element.  A warning is logged the first time a fragment of the reused {@link Document} is added to the bean context
+ * and is still there after the script returns, since its owner {@link Document} no longer contains it.  Only the
+ * {@link Node} beans added while a fragment is processed are checked.
+ * <p/>
+ * Unlike {@link DomModelCreator}, fragment elements are shallow copies of the streamed elements, without user data,
+ * so that the reused {@link Document} doesn't accumulate user data across fragments.
+ */
+public class ReusableDomModelCreator extends DomModelCreator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReusableDomModelCreator.class);
+
+    private static final TypedKey<Stack<FragmentBuilder>> FRAGMENT_BUILDER_STACK_TYPED_KEY = TypedKey.of();
+
+    private final TypedKey<Deque<Document>> documentPoolTypedKey = TypedKey.of();
+    private final TypedKey<RetentionObserver> retentionObserverTypedKey = TypedKey.of();
+    private final DocumentBuilder documentBuilder;
+    private final ResourceConfig resourceConfig;
+    private volatile boolean isRetentionWarned;
+
+    public ReusableDomModelCreator(ResourceConfig resourceConfig) throws ParserConfigurationException {
+        this.documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        this.resourceConfig = resourceConfig;
+    }
+
+    @Override
+    public void visitBefore(Element element, ExecutionContext executionContext) throws SmooksException {
+        Deque<Document> documentPool = executionContext.get(documentPoolTypedKey);
+        Document document = (documentPool == null ? null : documentPool.poll());
+
+        if (document == null) {
+            document = documentBuilder.newDocument();
+            document.setStrictErrorChecking(false);
+        }
+        if (!isRetentionWarned && executionContext.get(retentionObserverTypedKey) == null) {
+            RetentionObserver retentionObserver = new RetentionObserver();
+            executionContext.put(retentionObserverTypedKey, retentionObserver);
+            executionContext.getBeanContext().addObserver(retentionObserver);
+        }
+        pushBuilder(new FragmentBuilder(document, executionContext), executionContext);
+    }
+
+    @Override
+    public void visitAfter(Element element, ExecutionContext executionContext) throws SmooksException {
+        popCreator(executionContext);
+    }
+
+    @Override
+    public Document popCreator(ExecutionContext executionContext) {
+        Stack<FragmentBuilder> builderStack = executionContext.get(FRAGMENT_BUILDER_STACK_TYPED_KEY);
+
+        if (builderStack == null) {
+            throw new IllegalStateException("No DOM Creator Stack available.");
+        }
+
+        try {
+            FragmentBuilder builder = builderStack.pop();
+            executionContext.getContentDeliveryRuntime().removeExecutionEventListener(builder);
+            return builder.document;
+        } finally {
+            if (!builderStack.isEmpty()) {
+                executionContext.getContentDeliveryRuntime().addExecutionEventListener(builderStack.peek());
+            }
+        }
+    }
+
+    /**
+     * Detach the fragment from the {@link Document} and return the {@link Document} to the pool of the filtering
+     * operation.
+     *
+     * @param document         The {@link Document} popped by {@link #popCreator(ExecutionContext)}.
+     * @param executionContext The execution context of the filtering operation.
+     */
+    public void release(Document document, ExecutionContext executionContext) {
+        RetentionObserver retentionObserver = executionContext.get(retentionObserverTypedKey);
+        if (retentionObserver != null) {
+            warnOnRetention(document, retentionObserver, executionContext);
+        }
+
+        Element documentElement = document.getDocumentElement();
+        if (documentElement != null) {
+            document.removeChild(documentElement);
+        }
+
+        Deque<Document> documentPool = executionContext.get(documentPoolTypedKey);
+        if (documentPool == null) {
+            documentPool = new ArrayDeque<>();
+            executionContext.put(documentPoolTypedKey, documentPool);
+        }
+        documentPool.push(document);
+    }
+
+    /**
+     * @return True if a warning was logged for a fragment kept in the bean context beyond its script invocation.
+     */
+    public boolean isRetentionWarned() {
+        return isRetentionWarned;
+    }
+
+    private void warnOnRetention(Document document, RetentionObserver retentionObserver, ExecutionContext executionContext) {
+        for (Map.Entry<String, Node> bean : retentionObserver.nodeBeans.entrySet()) {
+            Node node = bean.getValue();
+            if (!isRetentionWarned && (node == document || node.getOwnerDocument() == document)) {
+                isRetentionWarned = true;
+                LOGGER.warn("Groovy script on '" + resourceConfig.getSelectorPath().getSelector() + "' keeps its fragment in bean '" + bean.getKey()
+                        + "' beyond the script invocation. The fragment is detached from its Document, which is reused for subsequent fragments because 'reuseFragmentDocument' is enabled.");
+            }
+        }
+        retentionObserver.nodeBeans.clear();
+
+        if (isRetentionWarned) {
+            executionContext.getBeanContext().removeObserver(retentionObserver);
+            executionContext.remove(retentionObserverTypedKey);
+        }
+    }
+
+    private void pushBuilder(FragmentBuilder builder, ExecutionContext executionContext) {
+        Stack<FragmentBuilder> builderStack = executionContext.get(FRAGMENT_BUILDER_STACK_TYPED_KEY);
+
+        if (builderStack == null) {
+            builderStack = new Stack<>();
+            executionContext.put(FRAGMENT_BUILDER_STACK_TYPED_KEY, builderStack);
+        }
+        if (!builderStack.isEmpty()) {
+            executionContext.getContentDeliveryRuntime().removeExecutionEventListener(builderStack.peek());
+        }
+        executionContext.getContentDeliveryRuntime().addExecutionEventListener(builder);
+        builderStack.push(builder);
+    }
+
+    /**
+     * Records the {@link Node} beans added to the bean context while fragments are processed, so that only those are
+     * checked for retention when a {@link Document} is released, instead of the whole bean context.
+     */
+    private static class RetentionObserver implements BeanContextLifecycleObserver {
+
+        private final Map<String, Node> nodeBeans = new LinkedHashMap<>();
+
+        @Override
+        public void onBeanLifecycleEvent(BeanContextLifecycleEvent event) {
+            if ((event.getLifecycle() == BeanLifecycle.ADD || event.getLifecycle() == BeanLifecycle.CHANGE) && event.getBean() instanceof Node) {
+                nodeBeans.put(event.getBeanId().getName(), (Node) event.getBean());
+            }
+        }
+    }
+
+    private static class FragmentBuilder extends BridgeAwareExecutionEventListener {
+
+        private final Document document;
+        private Node currentNode;
+
+        private FragmentBuilder(Document document, ExecutionContext executionContext) {
+            super(executionContext);
+            this.document = document;
+            this.currentNode = document;
+        }
+
+        @Override
+        public void doOnEvent(ExecutionEvent executionEvent) {
+            if (executionEvent instanceof StartFragmentExecutionEvent) {
+                Element element = copyElement((Element) ((StartFragmentExecutionEvent<?>) executionEvent).getFragment().unwrap());
+
+                if (currentNode == document) {
+                    DOMModel.getModel(executionContext).getModels().put(DomUtils.getName(element), element);
+                }
+                currentNode.appendChild(element);
+                currentNode = element;
+            } else if (executionEvent instanceof CharDataFragmentExecutionEvent) {
+                if (currentNode == document) {
+                    return;
+                }
+
+                CharacterData characterData = (CharacterData) ((CharDataFragmentExecutionEvent) executionEvent).getFragment().unwrap();
+                String text = characterData.getTextContent();
+                if (text.trim().isEmpty()) {
+                    return;
+                }
+                switch (characterData.getNodeType()) {
+                    case Node.TEXT_NODE:
+                    case Node.ENTITY_NODE:
+                        currentNode.appendChild(document.createTextNode(text));
+                        break;
+                    case Node.CDATA_SECTION_NODE:
+                        currentNode.appendChild(document.createCDATASection(text));
+                        break;
+                    case Node.COMMENT_NODE:
+                        currentNode.appendChild(document.createComment(text));
+                        break;
+                    default:
+                        break;
+                }
+            } else if (executionEvent instanceof EndFragmentExecutionEvent) {
+                currentNode = currentNode.getParentNode();
+            }
+        }
+
+        private Element copyElement(Element element) {
+            Element copy;
+            if (element.getLocalName() == null) {
+                copy = document.createElement(element.getNodeName());
+            } else {
+                copy = document.createElementNS(element.getNamespaceURI(), element.getNodeName());
+            }
+
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                if (attribute.getLocalName() == null) {
+                    copy.setAttribute(attribute.getName(), attribute.getValue());
+                } else {
+                    copy.setAttributeNS(attribute.getNamespaceURI(), attribute.getName(), attribute.getValue());
+                }
+            }
+
+            return copy;
+        }
+    }
+}
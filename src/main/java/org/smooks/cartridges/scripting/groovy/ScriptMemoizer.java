@@ -0,0 +1,262 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.SmooksException;
+import org.smooks.api.bean.context.BeanContext;
+import org.smooks.api.bean.lifecycle.BeanContextLifecycleObserver;
+import org.smooks.api.bean.lifecycle.BeanLifecycle;
+import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.engine.delivery.dom.serialize.Serializer;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoizes the results of a pure scripted visitor, keyed by the canonical form of the matched fragment.
+ * <p/>
+ * Memoization is enabled on a &lt;g:groovy&gt; resource by setting the "memoize" attribute to "true".  The first time
+ * a fragment is seen, the script is applied and its output (the fragment written via "writeFragment" and the beans
+ * it added to the bean context) is recorded.  When an identical fragment is matched again, the recorded output is
+ * replayed without applying the script.  Any other side effect of the script is not replayed, and replayed beans
+ * are the instances recorded on the first invocation, so they must not be mutated.
+ * <p/>
+ * Results are held in a bounded LRU cache of "memoizeCacheSize" entries (default 1000), split into independently
+ * locked segments so that concurrent filtering operations don't contend on a single lock.
+ */
+public class ScriptMemoizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScriptMemoizer.class);
+
+    public static final String MEMOIZE_PARAM = "memoize";
+    public static final String MEMOIZE_CACHE_SIZE_PARAM = "memoizeCacheSize";
+    public static final int DEFAULT_MEMOIZE_CACHE_SIZE = 1000;
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final String selector;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ScriptMemoizer(String selector, int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("Invalid memoize cache size '" + cacheSize + "'.  Must be greater than 0.");
+        }
+        this.selector = selector;
+
+        int segmentCount = Math.min(SEGMENT_COUNT, cacheSize);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(cacheSize / segmentCount + (i < cacheSize % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * Create the memoizer for a scripted visitor resource.
+     *
+     * @param resourceConfig The &lt;g:groovy&gt; resource configuration.
+     * @return The memoizer, or null if memoization is not enabled on the resource.
+     */
+    public static ScriptMemoizer create(ResourceConfig resourceConfig) {
+        if (!Boolean.parseBoolean(resourceConfig.getParameterValue(MEMOIZE_PARAM, String.class, "false"))) {
+            return null;
+        }
+
+        int cacheSize = Integer.parseInt(resourceConfig.getParameterValue(MEMOIZE_CACHE_SIZE_PARAM, String.class, Integer.toString(DEFAULT_MEMOIZE_CACHE_SIZE)).trim());
+
+        return new ScriptMemoizer(resourceConfig.getSelectorPath().getSelector(), cacheSize);
+    }
+
+    /**
+     * Apply the script to the fragment, or replay its recorded output if an identical fragment was seen before.
+     *
+     * @param element          The fragment element, before the script is applied to it.
+     * @param writer           The fragment writer, or null if the script doesn't write the fragment.
+     * @param executionContext The execution context.
+     * @param invocation       The script invocation.
+     */
+    public void apply(Element element, Writer writer, ExecutionContext executionContext, Invocation invocation) {
+        String key = canonicalize(element);
+        Segment segment = segments[(key.hashCode() & Integer.MAX_VALUE) % segments.length];
+        Result result = segment.get(key);
+        BeanContext beanContext = executionContext.getBeanContext();
+
+        if (result != null) {
+            hits.increment();
+            for (Map.Entry<String, Object> bean : result.beans.entrySet()) {
+                beanContext.addBean(bean.getKey(), bean.getValue());
+            }
+            write(result.output, writer);
+            return;
+        }
+
+        misses.increment();
+
+        StringWriter output = (writer != null ? new StringWriter() : null);
+        Map<String, Object> beansAdded = new LinkedHashMap<>();
+        BeanContextLifecycleObserver beanRecorder = event -> {
+            if (event.getLifecycle() == BeanLifecycle.ADD || event.getLifecycle() == BeanLifecycle.CHANGE) {
+                beansAdded.put(event.getBeanId().getName(), event.getBean());
+            }
+        };
+
+        beanContext.addObserver(beanRecorder);
+        try {
+            invocation.invoke(output);
+        } finally {
+            beanContext.removeObserver(beanRecorder);
+        }
+
+        result = new Result(Collections.unmodifiableMap(beansAdded), (output != null ? output.toString() : null));
+        segment.put(key, result);
+        write(result.output, writer);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Log the hit/miss statistics.
+     */
+    public void logStatistics() {
+        LOGGER.info(toString());
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+
+        return String.format("Groovy script memoization on '%s': %d hits, %d misses (%.1f%% hit rate), %d cached results.",
+                selector, hitCount, total - hitCount, (total > 0 ? hitCount * 100.0 / total : 0.0), size());
+    }
+
+    private static String canonicalize(Element element) {
+        StringWriter canonicalForm = new StringWriter();
+        Serializer.recursiveDOMWrite(element, canonicalForm);
+        return canonicalForm.toString();
+    }
+
+    private static void write(String output, Writer writer) {
+        if (output != null && writer != null) {
+            try {
+                writer.write(output);
+            } catch (IOException e) {
+                throw new SmooksException("Failed to write memoized Groovy script output.", e);
+            }
+        }
+    }
+
+    /**
+     * Script invocation.
+     */
+    public interface Invocation {
+
+        /**
+         * Apply the script.
+         *
+         * @param writer The writer to be used by "writeFragment", or null if the script doesn't write the fragment.
+         */
+        void invoke(Writer writer);
+    }
+
+    private static class Result {
+
+        private final Map<String, Object> beans;
+        private final String output;
+
+        private Result(Map<String, Object> beans, String output) {
+            this.beans = beans;
+            this.output = output;
+        }
+    }
+
+    private static class Segment {
+
+        private final LinkedHashMap<String, Result> results;
+
+        private Segment(int capacity) {
+            results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        private synchronized Result get(String key) {
+            return results.get(key);
+        }
+
+        private synchronized void put(String key, Result result) {
+            results.put(key, result);
+        }
+
+        private synchronized int size() {
+            return results.size();
+        }
+    }
+}
@@ -65,12 +65,43 @@ import org.smooks.api.resource.visitor.sax.ng.AfterVisitor
 
 import org.w3c.dom.*
 
+import jakarta.annotation.PreDestroy
+
 ${imports}
 
+<#-- Script body: the inline script, or a call to the precompiled script class bound to the named variables. -->
+<#macro script variables>
+<#if precompiledScript>
+        Binding scriptBinding = new Binding();
+<#list variables as variable>
+        scriptBinding.setVariable("${variable}", ${variable});
+</#list>
+<#if !variables?seq_contains("writeFragment")>
+        scriptBinding.setVariable("writeFragment", { outNode ->
+            throw new SmooksException("Groovy script on '" + config.getSelectorPath().getSelector() + "' cannot call 'writeFragment': the fragment can only be written by a script executed on the visitAfter event with a DOM fragment, without parallel execution.");
+        });
+</#if>
+        scriptConstructor.newInstance(scriptBinding).run();
+<#else>
+        ${visitorScript}
+</#if>
+</#macro>
+<#-- Precompiled script class, passed in by the factory so that the Visitor class doesn't depend on it. -->
+<#macro scriptClassConstructor>
+<#if precompiledScript>
+
+    private final java.lang.reflect.Constructor<? extends Script> scriptConstructor;
+
+    ${visitorName}(Class<? extends Script> scriptClass) {
+        scriptConstructor = scriptClass.getConstructor(Binding.class);
+    }
+</#if>
+</#macro>
 <#if visitBefore>
 class ${visitorName} implements BeforeVisitor {
 
     private ResourceConfig config;
+<@scriptClassConstructor/>
 
 	public void setConfiguration(ResourceConfig config) {
 		this.config = config;
@@ -78,13 +109,16 @@ class ${visitorName} implements BeforeVisitor {
 
     @Override
     public void visitBefore(Element element, ExecutionContext executionContext) {
+        if (FragmentReplayRunner.isDisabled(config, executionContext)) {
+            return;
+        }
         Map nodeModels = DOMModel.getModel(executionContext).getModels();
 
         def getBean = { beanId ->
             executionContext.getBeanContext().getBean(beanId);
         }
 
-        ${visitorScript}
+<@script ["element", "executionContext", "nodeModels", "getBean", "config"]/>
     }
 }
 <#else>
@@ -94,17 +128,36 @@ class ${visitorName} implements BeforeVisitor, AfterVisitor {
     private DomModelCreator modelCreator;
     private boolean format = false;
     private boolean isWritingFragment = false;
+    private FragmentCapture fragmentCapture;
+    private ScriptMemoizer memoizer;
+<#if parallel>
+    private ParallelScriptExecutor parallelExecutor = new ParallelScriptExecutor();
+</#if>
+<@scriptClassConstructor/>
 
 	public void setConfiguration(ResourceConfig config) {
 		this.config = config;
 
 		if(config.getParameterValue("createDOMFragment", Boolean.class, true)) {
-		    modelCreator = new DomModelCreator();
+		    if(Boolean.parseBoolean(config.getParameterValue("reuseFragmentDocument", String.class, "false"))) {
+		        modelCreator = new ReusableDomModelCreator(config);
+		    } else {
+		        modelCreator = new DomModelCreator();
+		    }
 		}
 		format = config.getParameterValue("format", Boolean.class, false);
 		isWritingFragment = config.getParameterValue("writeFragment", Boolean.class, false);
+		fragmentCapture = FragmentCapture.create(config);
+		memoizer = ScriptMemoizer.create(config);
 	}
 
+    @PreDestroy
+    public void preDestroy() {
+        if (memoizer != null) {
+            memoizer.logStatistics();
+        }
+    }
+
     public void visitAfter(Element element, ExecutionContext executionContext, Writer writer) {
         Document document = element.getOwnerDocument();
         Map nodeModels = DOMModel.getModel(executionContext).getModels();
@@ -113,6 +166,9 @@ class ${visitorName} implements BeforeVisitor, AfterVisitor {
             executionContext.getBeanContext().getBean(beanId);
         }
         def writeFragment = { outNode ->
+            if(writer == null) {
+                throw new SmooksException("Groovy script on '" + config.getSelectorPath().getSelector() + "' cannot call 'writeFragment': the 'writeFragment' parameter is not set to 'true'.");
+            }
             if(outNode.getNodeType() == Node.ELEMENT_NODE) {
                 Serializer.recursiveDOMWrite((Element) outNode, writer);
             } else if(outNode.getNodeType() == Node.DOCUMENT_NODE) {
@@ -122,12 +178,32 @@ class ${visitorName} implements BeforeVisitor, AfterVisitor {
             }
         }
 
-        ${visitorScript}
+<@script ["element", "executionContext", "document", "nodeModels", "getBean", "writeFragment", "writer", "config"]/>
+    }
+
+<#if parallel>
+    public Map visitAfterParallel(Element element, Map beans) {
+        Map addedBeans = new LinkedHashMap();
+
+        def getBean = { beanId ->
+            addedBeans.containsKey(beanId) ? addedBeans.get(beanId) : beans.get(beanId);
+        }
+        def addBean = { beanId, bean ->
+            addedBeans.put(beanId, bean);
+        }
+
+<@script ["element", "getBean", "addBean", "config"]/>
+
+        return addedBeans;
     }
 
+</#if>
     // visitBefore is required purely for setting up the model creator...
     @Override
     public void visitBefore(Element element, ExecutionContext executionContext) throws SmooksException {
+        if (FragmentReplayRunner.isDisabled(config, executionContext)) {
+            return;
+        }
         if(modelCreator != null) {
             if (isWritingFragment) {
                 Fragment nodeFragment = new NodeFragment(element, true)
@@ -142,19 +218,39 @@ class ${visitorName} implements BeforeVisitor, AfterVisitor {
 
     @Override
     public void visitAfter(Element element, ExecutionContext executionContext) throws SmooksException {
+        if (FragmentReplayRunner.isDisabled(config, executionContext)) {
+            return;
+        }
         if (modelCreator != null) {
             Document fragmentDoc = modelCreator.popCreator(executionContext);
             Element fragmentElement = fragmentDoc.getDocumentElement();
-            
-            if (isWritingFragment) {
-                Fragment nodeFragment = new NodeFragment(element, true)
-                VisitorMemento fragmentWriterMemento = new SimpleVisitorMemento<>(nodeFragment, this, new FragmentWriter(executionContext, nodeFragment))
-                executionContext.getMementoCaretaker().restore(fragmentWriterMemento)
-                Writer writer = fragmentWriterMemento.getState();
-                visitAfter(fragmentElement, executionContext, writer);
-            } else {
-                visitAfter(fragmentElement, executionContext, null);
+
+            if (fragmentCapture != null) {
+                fragmentCapture.capture(fragmentElement, executionContext);
             }
+
+<#if parallel>
+            parallelExecutor.submit(element, { beans -> visitAfterParallel(fragmentElement, beans) } as java.util.function.Function, executionContext);
+<#else>
+            try {
+                Writer writer = null;
+                if (isWritingFragment) {
+                    Fragment nodeFragment = new NodeFragment(element, true)
+                    VisitorMemento fragmentWriterMemento = new SimpleVisitorMemento<>(nodeFragment, this, new FragmentWriter(executionContext, nodeFragment))
+                    executionContext.getMementoCaretaker().restore(fragmentWriterMemento)
+                    writer = fragmentWriterMemento.getState();
+                }
+                if (memoizer != null) {
+                    memoizer.apply(fragmentElement, writer, executionContext, { memoWriter -> visitAfter(fragmentElement, executionContext, memoWriter) } as ScriptMemoizer.Invocation);
+                } else {
+                    visitAfter(fragmentElement, executionContext, writer);
+                }
+            } finally {
+                if (modelCreator instanceof ReusableDomModelCreator) {
+                    modelCreator.release(fragmentDoc, executionContext);
+                }
+            }
+</#if>
         } else {
             Map nodeModels = DOMModel.getModel(executionContext).getModels();
 
@@ -162,7 +258,7 @@ class ${visitorName} implements BeforeVisitor, AfterVisitor {
                 executionContext.getBeanContext().getBean(beanId);
             }
 
-            ${visitorScript}
+<@script ["element", "executionContext", "nodeModels", "getBean", "config"]/>
         }
     }
 }
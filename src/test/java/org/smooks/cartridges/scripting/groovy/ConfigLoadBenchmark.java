@@ -0,0 +1,128 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.smooks.Smooks;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark of concurrent Smooks config loading, as happens when many Smooks instances are created at once.
+ * <p/>
+ * Each task creates a Smooks instance from a config containing a number of Groovy scripts, creates an execution
+ * context (forcing the scripts to be compiled) and closes the instance.  The throughput is reported for an
+ * increasing number of threads.
+ * <p/>
+ * Usage: ConfigLoadBenchmark [scriptCount] [tasksPerThread] [maxThreads]
+ */
+public class ConfigLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int scriptCount = (args.length > 0 ? Integer.parseInt(args[0]) : 10);
+        int tasksPerThread = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+        int maxThreads = (args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+        byte[] config = createConfig(scriptCount);
+
+        // Warm up...
+        run(config, 1, tasksPerThread);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long elapsed = run(config, threads, tasksPerThread);
+            System.out.printf("threads=%d configs=%d elapsed=%dms throughput=%.1f configs/s%n",
+                    threads, threads * tasksPerThread, elapsed / 1000000, threads * tasksPerThread / (elapsed / 1e9));
+        }
+    }
+
+    private static long run(byte[] config, int threads, int tasksPerThread) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+
+            for (int i = 0; i < threads * tasksPerThread; i++) {
+                futures.add(executorService.submit(() -> {
+                    loadConfig(config);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+
+            return System.nanoTime() - start;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static void loadConfig(byte[] config) throws IOException, SAXException {
+        Smooks smooks = new Smooks(new ByteArrayInputStream(config));
+        try {
+            smooks.createExecutionContext();
+        } finally {
+            smooks.close();
+        }
+    }
+
+    private static byte[] createConfig(int scriptCount) {
+        StringBuilder config = new StringBuilder();
+
+        config.append("<smooks-resource-list xmlns=\"https://www.smooks.org/xsd/smooks-2.0.xsd\" xmlns:g=\"https://www.smooks.org/xsd/smooks/groovy-2.0.xsd\">");
+        for (int i = 0; i < scriptCount; i++) {
+            config.append("<g:groovy executeOnElement=\"item-").append(i).append("\">");
+            config.append("<g:script>element.setAttribute('index', '").append(i).append("')</g:script>");
+            config.append("</g:groovy>");
+        }
+        config.append("</smooks-resource-list>");
+
+        return config.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,202 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.junit.jupiter.api.Test;
+import org.smooks.Smooks;
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.engine.resource.config.DefaultResourceConfig;
+import org.smooks.io.payload.StringResult;
+import org.smooks.io.payload.StringSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FragmentCaptureTest {
+
+    @Test
+    public void test_capture_and_replay() throws IOException {
+        File corpusFile = File.createTempFile("fragments", ".corpus");
+        corpusFile.deleteOnExit();
+
+        Smooks smooks = createSmooks(corpusFile, 100);
+        try {
+            StringResult result = new StringResult();
+            smooks.filterSource(new StringSource("<shopping><category type=\"groceries\"><item>Chocolate</item></category><category type=\"supplies\"><item>Paper</item></category></shopping>"), result);
+            assertEquals("<shopping><category type=\"groceries\" visited=\"true\"><item>Chocolate</item></category><category type=\"supplies\" visited=\"true\"><item>Paper</item></category></shopping>", result.getResult());
+
+            List<FragmentCorpus.Record> records = FragmentCorpus.forFile(corpusFile).read();
+            assertEquals(2, records.size());
+            assertEquals("category", records.get(0).getSelector());
+            assertEquals("<category type=\"groceries\"><item>Chocolate</item></category>", records.get(0).getFragment());
+            assertEquals("<category type=\"supplies\"><item>Paper</item></category>", records.get(1).getFragment());
+
+            FragmentReplayRunner.Report report = new FragmentReplayRunner(smooks, records).run(3);
+            assertEquals(6, report.getFragmentCount());
+            assertTrue(report.getThroughput() > 0);
+            assertTrue(report.getLatency(50) <= report.getLatency(100));
+            assertTrue(report.getBaselineLatency(50) > 0);
+            assertEquals(2, FragmentCorpus.forFile(corpusFile).read().size());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_replay_contextual_selector() throws IOException {
+        File corpusFile = File.createTempFile("fragments", ".corpus");
+        corpusFile.deleteOnExit();
+
+        Smooks smooks = createSmooks("shopping/category", corpusFile, 100);
+        try {
+            smooks.filterSource(new StringSource("<shopping><category type=\"groceries\"><item>Chocolate</item></category></shopping>"), new StringResult());
+
+            List<FragmentCorpus.Record> records = FragmentCorpus.forFile(corpusFile).read();
+            assertEquals(1, records.size());
+            assertEquals("<shopping><category type=\"groceries\"><item>Chocolate</item></category></shopping>", FragmentReplayRunner.wrap(records.get(0)));
+            assertEquals(2, new FragmentReplayRunner(smooks, records).run(2).getFragmentCount());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_replay_not_visited() throws IOException {
+        File corpusFile = File.createTempFile("fragments", ".corpus");
+        corpusFile.deleteOnExit();
+
+        Smooks smooks = createSmooks("category", corpusFile, 100);
+        try {
+            List<FragmentCorpus.Record> records = Collections.singletonList(new FragmentCorpus.Record("inline:0", "item", System.currentTimeMillis(), "<item>Chocolate</item>"));
+            new FragmentReplayRunner(smooks, records).run(1);
+            fail("Expected IllegalStateException.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Replayed fragment captured on selector 'item'"));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_capture_script_class() throws IOException {
+        File corpusFile = File.createTempFile("fragments", ".corpus");
+        corpusFile.deleteOnExit();
+
+        ResourceConfig resourceConfig = new DefaultResourceConfig("order-item", new Properties());
+        resourceConfig.setResourceType("groovy");
+        resourceConfig.setParameter(GroovyContentHandlerFactory.SCRIPT_CLASS_PARAM, ScriptClassTest.UppercaseItemScript.class.getName());
+        resourceConfig.setParameter("writeFragment", "true");
+        resourceConfig.setParameter(FragmentCapture.CAPTURE_FILE_PARAM, corpusFile.getAbsolutePath());
+
+        Smooks smooks = new Smooks();
+        smooks.addResourceConfig(resourceConfig);
+        try {
+            StringResult result = new StringResult();
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\">item1</order-item></order>"), result);
+            assertEquals("<order><order-item id=\"1\">ITEM1</order-item></order>", result.getResult());
+
+            List<FragmentCorpus.Record> records = FragmentCorpus.forFile(corpusFile).read();
+            assertEquals(1, records.size());
+            assertEquals("class:" + ScriptClassTest.UppercaseItemScript.class.getName(), records.get(0).getResource());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_disabled_selector() throws IOException {
+        File corpusFile = File.createTempFile("fragments", ".corpus");
+        corpusFile.deleteOnExit();
+
+        Smooks smooks = createSmooks(corpusFile, 100);
+        try {
+            ExecutionContext executionContext = smooks.createExecutionContext();
+            executionContext.put(FragmentReplayRunner.DISABLED_SELECTORS_TYPED_KEY, Collections.singleton("category"));
+            StringResult result = new StringResult();
+            smooks.filterSource(executionContext, new StringSource("<shopping><category type=\"groceries\"/></shopping>"), result);
+
+            assertEquals("<shopping><category type=\"groceries\"/></shopping>", result.getResult());
+            assertEquals(0, FragmentCorpus.forFile(corpusFile).read().size());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_capture_rate() throws IOException {
+        File corpusFile = File.createTempFile("fragments", ".corpus");
+        corpusFile.deleteOnExit();
+
+        Smooks smooks = createSmooks(corpusFile, 1);
+        try {
+            smooks.filterSource(new StringSource("<shopping><category/><category/><category/></shopping>"), new StringResult());
+            assertEquals(1, FragmentCorpus.forFile(corpusFile).read().size());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    private Smooks createSmooks(File corpusFile, int captureRate) {
+        return createSmooks("category", corpusFile, captureRate);
+    }
+
+    private Smooks createSmooks(String selector, File corpusFile, int captureRate) {
+        ResourceConfig resourceConfig = new DefaultResourceConfig(selector, new Properties(), "element.setAttribute('visited', 'true'); writeFragment(element);");
+        resourceConfig.setResourceType("groovy");
+        resourceConfig.setParameter(FragmentCapture.CAPTURE_FILE_PARAM, corpusFile.getAbsolutePath());
+        resourceConfig.setParameter(FragmentCapture.CAPTURE_RATE_PARAM, Integer.toString(captureRate));
+
+        Smooks smooks = new Smooks();
+        smooks.addResourceConfig(resourceConfig);
+
+        return smooks;
+    }
+}
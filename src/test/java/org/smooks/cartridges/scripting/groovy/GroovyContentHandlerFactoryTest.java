@@ -57,9 +57,17 @@ import org.xml.sax.SAXException;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author tfennelly
@@ -80,6 +88,60 @@ public class GroovyContentHandlerFactoryTest {
 		test_goodscript(config);
 	}
 
+	@Test
+	public void test_createClassName() {
+		GroovyContentHandlerFactory creator = new GroovyContentHandlerFactory();
+		String className = creator.createClassName("element.setAttribute('a', 'b')", "", false, false);
+
+		assertTrue(className.matches("SmooksVisitor_[0-9a-f]{16}"));
+		assertEquals(className, new GroovyContentHandlerFactory().createClassName("element.setAttribute('a', 'b')", "", false, false));
+		assertNotEquals(className, creator.createClassName("element.setAttribute('a', 'c')", "", false, false));
+		assertNotEquals(className, creator.createClassName("element.setAttribute('a', 'b')", "", true, false));
+	}
+
+	@Test
+	public void test_concurrent_create() throws InterruptedException, ExecutionException {
+		GroovyContentHandlerFactory creator = new GroovyContentHandlerFactory();
+		MockApplicationContext mockApplicationContext = new MockApplicationContext();
+		mockApplicationContext.getRegistry().lookup(new LifecycleManagerLookup()).applyPhase(creator, new PostConstructLifecyclePhase(new Scope(mockApplicationContext.getRegistry())));
+
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Object>> visitors = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				ResourceConfig config = new DefaultResourceConfig("x", new Properties(), "element.setAttribute('index', '" + (i % 4) + "')");
+				config.setResourceType("groovy");
+				visitors.add(executorService.submit(() -> creator.create(config)));
+			}
+
+			for (int i = 0; i < visitors.size(); i++) {
+				assertEquals(visitors.get(i % 4).get().getClass().getName(), visitors.get(i).get().getClass().getName());
+				assertNotEquals(visitors.get(i).get().getClass(), visitors.get((i + 1) % visitors.size()).get().getClass());
+			}
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	@Test
+	public void test_script_class_visitor_reused() {
+		GroovyContentHandlerFactory creator = new GroovyContentHandlerFactory();
+		MockApplicationContext mockApplicationContext = new MockApplicationContext();
+		mockApplicationContext.getRegistry().lookup(new LifecycleManagerLookup()).applyPhase(creator, new PostConstructLifecyclePhase(new Scope(mockApplicationContext.getRegistry())));
+
+		ResourceConfig uppercaseConfig = new DefaultResourceConfig("x", new Properties());
+		uppercaseConfig.setParameter(GroovyContentHandlerFactory.SCRIPT_CLASS_PARAM, ScriptClassTest.UppercaseItemScript.class.getName());
+		ResourceConfig addItemConfig = new DefaultResourceConfig("x", new Properties());
+		addItemConfig.setParameter(GroovyContentHandlerFactory.SCRIPT_CLASS_PARAM, ScriptClassTest.AddItemBeanScript.class.getName());
+		ResourceConfig parallelConfig = new DefaultResourceConfig("x", new Properties());
+		parallelConfig.setParameter(GroovyContentHandlerFactory.SCRIPT_CLASS_PARAM, ScriptClassTest.AddItemBeanScript.class.getName());
+		parallelConfig.setParameter("parallel", "true");
+
+		Object uppercaseVisitor = creator.create(uppercaseConfig);
+		assertEquals(uppercaseVisitor.getClass(), creator.create(addItemConfig).getClass());
+		assertNotEquals(uppercaseVisitor.getClass(), creator.create(parallelConfig).getClass());
+	}
+
 	private void test_goodscript_by_URI(String path) throws InstantiationException, IllegalArgumentException, IOException, SAXException {
 		test_goodscript(new DefaultResourceConfig("x", new Properties(), path));
 	}
@@ -0,0 +1,157 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.smooks.Smooks;
+import org.smooks.io.payload.JavaResult;
+import org.smooks.io.payload.StringSource;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of parallel script execution, comparing the end-to-end filtering time of a message with many
+ * &lt;order-item&gt; elements when the script is executed serially and in parallel on an increasing number of cores.
+ * <p/>
+ * Each measurement runs in a separate JVM, with the parallelism of the common fork-join pool set to the number of
+ * cores measured.  Each script adds a bean after a fixed amount of CPU work.  The scripts cycle through a fixed
+ * set of bean ids because registering a new bean id costs time proportional to the number of bean ids already
+ * registered, which would dominate the measurement.
+ * <p/>
+ * Usage: ParallelExecutionBenchmark [items] [work] [maxCores]
+ */
+public class ParallelExecutionBenchmark {
+
+    private static final int BEAN_IDS = 100;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--run")) {
+            System.out.println(run(Boolean.parseBoolean(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3])));
+            return;
+        }
+
+        int items = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        int work = (args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+        int maxCores = (args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+
+        System.out.printf("serial: %dms%n", fork(false, 1, items, work));
+        for (int cores = 1; cores <= maxCores; cores *= 2) {
+            System.out.printf("parallel, %d cores: %dms%n", cores, fork(true, cores, items, work));
+        }
+    }
+
+    private static long fork(boolean parallel, int cores, int items, int work) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + cores);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ParallelExecutionBenchmark.class.getName());
+        command.add("--run");
+        command.add(Boolean.toString(parallel));
+        command.add(Integer.toString(items));
+        command.add(Integer.toString(work));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String lastLine = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lastLine = line;
+            }
+        }
+        if (process.waitFor() != 0 || lastLine == null) {
+            throw new IllegalStateException("Benchmark run failed.");
+        }
+
+        return Long.parseLong(lastLine.trim());
+    }
+
+    private static long run(boolean parallel, int items, int work) throws Exception {
+        Smooks smooks = new Smooks(new ByteArrayInputStream(createConfig(parallel, work)));
+        try {
+            String message = createMessage(items);
+
+            // Warm up...
+            smooks.filterSource(new StringSource(createMessage(Math.min(items, 1000))), new JavaResult());
+
+            long start = System.nanoTime();
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource(message), result);
+            long elapsed = System.nanoTime() - start;
+
+            if (result.getBean("item-" + (items - 1) % BEAN_IDS) == null) {
+                throw new IllegalStateException("Script was not applied to all items.");
+            }
+
+            return elapsed / 1000000;
+        } finally {
+            smooks.close();
+        }
+    }
+
+    private static byte[] createConfig(boolean parallel, int work) {
+        String addBean = (parallel ? "addBean" : "executionContext.getBeanContext().addBean");
+
+        return ("<smooks-resource-list xmlns=\"https://www.smooks.org/xsd/smooks-2.0.xsd\" xmlns:g=\"https://www.smooks.org/xsd/smooks/groovy-2.0.xsd\">"
+                + "<g:groovy executeOnElement=\"order-item\" parallel=\"" + parallel + "\"><g:script><![CDATA["
+                + "String text = element.getTextContent(); int hash = 0;"
+                + "for (int i = 0; i < " + work + "; i++) { hash = 31 * hash + text.charAt(i % text.length()); }"
+                + addBean + "('item-' + (element.getAttribute('id') as int) % " + BEAN_IDS + ", hash);"
+                + "]]></g:script></g:groovy>"
+                + "</smooks-resource-list>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String createMessage(int items) {
+        StringBuilder message = new StringBuilder("<order>");
+        for (int i = 0; i < items; i++) {
+            message.append("<order-item id=\"").append(i).append("\">item").append(i).append("</order-item>");
+        }
+        return message.append("</order>").toString();
+    }
+}
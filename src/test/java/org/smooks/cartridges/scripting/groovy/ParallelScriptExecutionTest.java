@@ -0,0 +1,170 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.junit.jupiter.api.Test;
+import org.smooks.Smooks;
+import org.smooks.api.SmooksException;
+import org.smooks.io.payload.JavaResult;
+import org.smooks.io.payload.StringResult;
+import org.smooks.io.payload.StringSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelScriptExecutionTest {
+
+    @Test
+    public void test_parallel() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-parallel-01.xml"));
+        StringBuilder message = new StringBuilder("<order>");
+        for (int i = 0; i < 1000; i++) {
+            message.append("<order-item id=\"").append(i).append("\">item").append(i).append("</order-item>");
+        }
+        message.append("</order>");
+
+        try {
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource(message.toString()), result);
+
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("ITEM" + i, result.getBean("item-" + i));
+            }
+            assertEquals("999", result.getBean("lastItem"));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_parallel_header_bean() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-parallel-04.xml"));
+        StringBuilder message = new StringBuilder("<orders>");
+        for (int i = 0; i < 100; i++) {
+            message.append("<order id=\"o").append(i).append("\">");
+            for (int j = 0; j < 3; j++) {
+                message.append("<order-item id=\"").append(i).append("-").append(j).append("\"/>");
+            }
+            message.append("</order>");
+        }
+        message.append("</orders>");
+
+        try {
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource(message.toString()), result);
+
+            for (int i = 0; i < 100; i++) {
+                for (int j = 0; j < 3; j++) {
+                    assertEquals("o" + i, result.getBean("item-" + i + "-" + j));
+                }
+            }
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_parallel_document_element() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-parallel-05.xml"));
+
+        try {
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource("<order id=\"r\"><x/></order>"), result);
+
+            assertEquals("r", result.getBean("root"));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_parallel_script_failure() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-parallel-01.xml"));
+
+        try {
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\"/><order-item id=\"fail\"/></order>"), new JavaResult());
+            fail("Expected SmooksException.");
+        } catch (SmooksException e) {
+            assertEquals("Failed to filter source", e.getMessage());
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertEquals("Bad order-item", cause.getMessage());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_parallel_writeFragment() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-parallel-02.xml"));
+
+        try {
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\"/></order>"), new StringResult());
+            fail("Expected SmooksException.");
+        } catch (SmooksException e) {
+            assertTrue(e.getCause().getMessage().endsWith("parallel execution does not support 'writeFragment'."));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_parallel_without_DOM_fragment() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-parallel-03.xml"));
+
+        try {
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\"/></order>"), new JavaResult());
+            fail("Expected SmooksException.");
+        } catch (SmooksException e) {
+            assertTrue(e.getCause().getMessage().endsWith("parallel execution requires the DOM fragment ('createDOMFragment' cannot be 'false')."));
+        } finally {
+            smooks.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.junit.jupiter.api.Test;
+import org.smooks.Smooks;
+import org.smooks.api.ExecutionContext;
+import org.smooks.api.resource.config.ResourceConfig;
+import org.smooks.engine.resource.config.DefaultResourceConfig;
+import org.smooks.io.payload.JavaResult;
+import org.smooks.io.payload.StringResult;
+import org.smooks.io.payload.StringSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReusableDomModelCreatorTest {
+
+    private static final String SHOPPING_LIST = "<shopping><category type=\"groceries\"><item>Chocolate</item><item>Coffee</item></category><category type=\"supplies\"><item>Paper</item><item quantity=\"4\">Pens</item></category><category type=\"present\"><!-- gift --><item when=\"Aug 10\">Kathryn's Birthday</item></category></shopping>";
+
+    @Test
+    public void test_reuse_output() {
+        String script = "element.setAttribute('items', String.valueOf(element.getElementsByTagName('item').getLength())); writeFragment(element);";
+
+        assertEquals(filter(createSmooks(script, false)), filter(createSmooks(script, true)));
+        assertEquals("<shopping><category items=\"2\" type=\"groceries\"><item>Chocolate</item><item>Coffee</item></category><category items=\"2\" type=\"supplies\"><item>Paper</item><item quantity=\"4\">Pens</item></category><category items=\"1\" type=\"present\"><!-- gift --><item when=\"Aug 10\">Kathryn's Birthday</item></category></shopping>", filter(createSmooks(script, true)));
+    }
+
+    @Test
+    public void test_reuse_document() {
+        Smooks smooks = createSmooks("getBean('documents').add(element.getOwnerDocument());", true);
+        try {
+            List<Document> documents = new ArrayList<>();
+            ExecutionContext executionContext = smooks.createExecutionContext();
+            executionContext.getBeanContext().addBean("documents", documents);
+            smooks.filterSource(executionContext, new StringSource(SHOPPING_LIST), new StringResult());
+
+            assertEquals(3, documents.size());
+            assertSame(documents.get(0), documents.get(1));
+            assertSame(documents.get(0), documents.get(2));
+            assertNull(documents.get(0).getDocumentElement());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_retained_fragment() {
+        Smooks smooks = createSmooks("executionContext.getBeanContext().addBean(element.getAttribute('type'), element);", true);
+        try {
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource(SHOPPING_LIST), result);
+
+            Element groceries = (Element) result.getBean("groceries");
+            assertNull(groceries.getParentNode());
+            assertEquals(2, groceries.getElementsByTagName("item").getLength());
+            assertEquals("Coffee", groceries.getElementsByTagName("item").item(1).getTextContent());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_retention_warning() {
+        assertTrue(isRetentionWarned("executionContext.getBeanContext().addBean(element.getAttribute('type'), element);"));
+        assertTrue(isRetentionWarned("executionContext.getBeanContext().addBean('lastItem', element.getElementsByTagName('item').item(0));"));
+        assertFalse(isRetentionWarned("executionContext.getBeanContext().addBean('itemCount', element.getElementsByTagName('item').getLength());"));
+        assertFalse(isRetentionWarned("executionContext.getBeanContext().addBean('type', element.getAttributeNode('type').getValue());"));
+    }
+
+    private boolean isRetentionWarned(String script) {
+        Smooks smooks = createSmooks("executionContext.getBeanContext().addBean('modelCreator', modelCreator); " + script, true);
+        try {
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource(SHOPPING_LIST), result);
+            return ((ReusableDomModelCreator) result.getBean("modelCreator")).isRetentionWarned();
+        } finally {
+            smooks.close();
+        }
+    }
+
+    private String filter(Smooks smooks) {
+        try {
+            StringResult result = new StringResult();
+            smooks.filterSource(new StringSource(SHOPPING_LIST), result);
+            return result.getResult();
+        } finally {
+            smooks.close();
+        }
+    }
+
+    private Smooks createSmooks(String script, boolean reuseFragmentDocument) {
+        ResourceConfig resourceConfig = new DefaultResourceConfig("category", new Properties(), script);
+        resourceConfig.setResourceType("groovy");
+        resourceConfig.setParameter("reuseFragmentDocument", Boolean.toString(reuseFragmentDocument));
+
+        Smooks smooks = new Smooks();
+        smooks.addResourceConfig(resourceConfig);
+
+        return smooks;
+    }
+}
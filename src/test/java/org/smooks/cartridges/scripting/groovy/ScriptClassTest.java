@@ -0,0 +1,136 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import org.junit.jupiter.api.Test;
+import org.smooks.Smooks;
+import org.smooks.api.SmooksException;
+import org.smooks.io.payload.JavaResult;
+import org.smooks.io.payload.StringResult;
+import org.smooks.io.payload.StringSource;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ScriptClassTest {
+
+    @Test
+    public void test_writeFragment() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-class-01.xml"));
+
+        try {
+            StringResult result = new StringResult();
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\">item1</order-item><order-item id=\"2\">item2</order-item></order>"), result);
+
+            assertEquals("<order><order-item id=\"1\">ITEM1</order-item><order-item id=\"2\">ITEM2</order-item></order>", result.getResult());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_parallel() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-class-02.xml"));
+
+        try {
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\">item1</order-item><order-item id=\"2\">item2</order-item></order>"), result);
+
+            assertEquals("ITEM1", result.getBean("item-1"));
+            assertEquals("ITEM2", result.getBean("item-2"));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_writeFragment_not_enabled() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-class-03.xml"));
+
+        try {
+            smooks.filterSource(new StringSource("<order><order-item id=\"1\">item1</order-item></order>"), new StringResult());
+            fail("Expected SmooksException.");
+        } catch (SmooksException e) {
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertEquals("Groovy script on 'order-item' cannot call 'writeFragment': the 'writeFragment' parameter is not set to 'true'.", cause.getMessage());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    public static class UppercaseItemScript extends Script {
+
+        public UppercaseItemScript(Binding binding) {
+            super(binding);
+        }
+
+        @Override
+        public Object run() {
+            Element element = (Element) getProperty("element");
+            element.setTextContent(element.getTextContent().toUpperCase());
+            return invokeMethod("writeFragment", element);
+        }
+    }
+
+    public static class AddItemBeanScript extends Script {
+
+        public AddItemBeanScript(Binding binding) {
+            super(binding);
+        }
+
+        @Override
+        public Object run() {
+            Element element = (Element) getProperty("element");
+            return invokeMethod("addBean", new Object[]{"item-" + element.getAttribute("id"), element.getTextContent().toUpperCase()});
+        }
+    }
+}
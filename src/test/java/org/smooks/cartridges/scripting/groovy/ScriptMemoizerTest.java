@@ -0,0 +1,126 @@
+/*-
+ * ========================LICENSE_START=================================
+ * smooks-scripting-cartridge
+ * %%
+ * Copyright (C) 2020 Smooks
+ * %%
+ * Licensed under the terms of the Apache License Version 2.0, or
+ * the GNU Lesser General Public License version 3.0 or later.
+ *
+ * SPDX-License-Identifier: Apache-2.0 OR LGPL-3.0-or-later
+ *
+ * ======================================================================
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ======================================================================
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ * =========================LICENSE_END==================================
+ */
+package org.smooks.cartridges.scripting.groovy;
+
+import org.junit.jupiter.api.Test;
+import org.smooks.Smooks;
+import org.smooks.api.ExecutionContext;
+import org.smooks.io.payload.JavaResult;
+import org.smooks.io.payload.StringResult;
+import org.smooks.io.payload.StringSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScriptMemoizerTest {
+
+    public static final AtomicInteger INVOCATIONS = new AtomicInteger();
+
+    @Test
+    public void test_memoize() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-memoize-01.xml"));
+
+        try {
+            INVOCATIONS.set(0);
+            ExecutionContext executionContext = smooks.createExecutionContext();
+            StringResult result = new StringResult();
+            smooks.filterSource(executionContext, new StringSource("<codes><code>a</code><code>b</code><code>a</code><code>a</code></codes>"), result);
+
+            assertEquals("<codes><code>A</code><code>B</code><code>A</code><code>A</code></codes>", result.getResult());
+            assertEquals("A", executionContext.getBeanContext().getBean("lastCode"));
+            assertEquals(2, INVOCATIONS.get());
+
+            // The cache is shared across filtering operations...
+            JavaResult javaResult = new JavaResult();
+            smooks.filterSource(new StringSource("<codes><code>b</code></codes>"), javaResult);
+            assertEquals("B", javaResult.getBean("lastCode"));
+            assertEquals(2, INVOCATIONS.get());
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_memoize_unchanged_bean_instance() throws IOException, SAXException {
+        Smooks smooks = new Smooks(getClass().getResourceAsStream("scripted-memoize-02.xml"));
+
+        try {
+            // 'd' sets the same 'OK' String instance already held by the bean context...
+            JavaResult result = new JavaResult();
+            smooks.filterSource(new StringSource("<r><c>a</c><c>d</c><c>b</c><c>d</c></r>"), result);
+
+            assertEquals("OK", result.getBean("status"));
+        } finally {
+            smooks.close();
+        }
+    }
+
+    @Test
+    public void test_lru_eviction() throws ParserConfigurationException {
+        ScriptMemoizer memoizer = new ScriptMemoizer("code", 1);
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element a = document.createElement("a");
+        Element b = document.createElement("b");
+        AtomicInteger invocations = new AtomicInteger();
+        ExecutionContext executionContext = new Smooks().createExecutionContext();
+
+        memoizer.apply(a, null, executionContext, writer -> invocations.incrementAndGet());
+        memoizer.apply(a, null, executionContext, writer -> invocations.incrementAndGet());
+        memoizer.apply(b, null, executionContext, writer -> invocations.incrementAndGet());
+        memoizer.apply(a, null, executionContext, writer -> invocations.incrementAndGet());
+
+        assertEquals(3, invocations.get());
+        assertEquals(1, memoizer.size());
+        assertEquals(1, memoizer.getHitCount());
+        assertEquals(3, memoizer.getMissCount());
+        assertEquals("Groovy script memoization on 'code': 1 hits, 3 misses (25.0% hit rate), 1 cached results.", memoizer.toString());
+    }
+}